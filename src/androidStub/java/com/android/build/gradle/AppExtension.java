@@ -0,0 +1,48 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.android.build.gradle;
+
+import com.android.build.gradle.api.AndroidSourceSet;
+import com.github.jamorham.android.replace.token.stub.StubSourceSet;
+
+import org.gradle.api.NamedDomainObjectContainer;
+import org.gradle.api.Project;
+
+/**
+ * Stand-in for the Android Gradle plugin extension, only the members used by the preprocessor
+ */
+public class AppExtension {
+
+    private final NamedDomainObjectContainer<AndroidSourceSet> sourceSets;
+
+    public AppExtension(final Project project) {
+        this.sourceSets = project.container(AndroidSourceSet.class, name -> new StubSourceSet(name, project));
+        this.sourceSets.create("main");
+        this.sourceSets.create("test");
+    }
+
+    public NamedDomainObjectContainer<AndroidSourceSet> getSourceSets() {
+        return this.sourceSets;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token.stub;
+
+import com.android.build.gradle.api.AndroidSourceDirectorySet;
+import com.android.build.gradle.api.AndroidSourceFile;
+import com.android.build.gradle.api.AndroidSourceSet;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class StubSourceSet implements AndroidSourceSet {
+
+    private final String name;
+    private final Project project;
+    private final DirectorySet java;
+    private final DirectorySet res;
+    private final SourceFile manifest;
+
+    public StubSourceSet(final String name, final Project project) {
+        this.name = name;
+        this.project = project;
+        this.java = new DirectorySet("src/" + name + "/java");
+        this.res = new DirectorySet("src/" + name + "/res");
+        this.manifest = new SourceFile("src/" + name + "/AndroidManifest.xml");
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public AndroidSourceDirectorySet getJava() {
+        return this.java;
+    }
+
+    @Override
+    public AndroidSourceDirectorySet getRes() {
+        return this.res;
+    }
+
+    @Override
+    public AndroidSourceFile getManifest() {
+        return this.manifest;
+    }
+
+    @Override
+    public String toString() {
+        return "source set " + this.name;
+    }
+
+    private final class DirectorySet implements AndroidSourceDirectorySet {
+        private final Set<File> srcDirs = new LinkedHashSet<>();
+
+        private DirectorySet(final String srcDir) {
+            this.srcDirs.add(project.file(srcDir));
+        }
+
+        @Override
+        public Set<File> getSrcDirs() {
+            return this.srcDirs;
+        }
+
+        @Override
+        public AndroidSourceDirectorySet setSrcDirs(final Iterable<?> srcDirs) {
+            this.srcDirs.clear();
+            for (final Object srcDir : srcDirs) {
+                this.srcDirs.add(project.file(srcDir));
+            }
+            return this;
+        }
+    }
+
+    private final class SourceFile implements AndroidSourceFile {
+        private File srcFile;
+
+        private SourceFile(final String srcFile) {
+            this.srcFile = project.file(srcFile);
+        }
+
+        @Override
+        public File getSrcFile() {
+            return this.srcFile;
+        }
+
+        @Override
+        public AndroidSourceFile srcFile(final Object srcPath) {
+            this.srcFile = project.file(srcPath);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import org.gradle.api.logging.LogLevel;
+import org.gradle.api.logging.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log forwarding to the Gradle logger
+ * <p>
+ * Worker threads append to a lock-free ring buffer and return, a single drainer thread formats
+ * the messages and hands them to Gradle. Per file messages are sampled: the first
+ * {@link #SAMPLE_LIMIT} of each category are forwarded and the rest only counted, with a summary
+ * line when the log is closed. Nothing is sampled when Gradle runs with --debug.
+ * <p>
+ * If the buffer is full the message is dropped rather than blocking the worker, the number of
+ * dropped messages is reported when closing.
+ */
+final class AsyncLog implements AutoCloseable {
+
+    static final int SAMPLE_LIMIT = 50;
+    private static final int CAPACITY = 1 << 16;
+    private static final long IDLE_NANOS = 1000000;
+
+    private final Logger logger;
+    private final boolean verbose;
+    private final boolean sampling;
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainer;
+    // Only touched by the drainer
+    private final Map<String, Integer> sampled = new LinkedHashMap<>();
+    private volatile long head;
+    private volatile boolean closed;
+
+    /**
+     * @param verbose Forward everything at lifecycle level, so it shows without --info
+     */
+    AsyncLog(final Logger logger, final boolean verbose) {
+        this.logger = logger;
+        this.verbose = verbose;
+        this.sampling = !logger.isEnabled(LogLevel.DEBUG);
+        this.drainer = new Thread(this::drain, "replace-preprocessor-log");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    boolean isEnabled(final LogLevel level) {
+        return logger.isEnabled(effective(level));
+    }
+
+    void log(final LogLevel level, final String message) {
+        if (isEnabled(level)) {
+            append(new Entry(level, null, message, null));
+        }
+    }
+
+    /**
+     * Log a repetitive message, formatted as category followed by detail on the drainer thread
+     */
+    void sample(final LogLevel level, final String category, final Object detail) {
+        if (isEnabled(level)) {
+            append(new Entry(level, category, null, detail));
+        }
+    }
+
+    /**
+     * Flush everything appended so far, print the sampling summary and stop the drainer
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LogLevel effective(final LogLevel level) {
+        return verbose && level.compareTo(LogLevel.LIFECYCLE) < 0 ? LogLevel.LIFECYCLE : level;
+    }
+
+    // Multiple producers, claim a slot then publish into it
+    private void append(final Entry entry) {
+        while (true) {
+            final long position = tail.get();
+            if (position - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                ring.lazySet((int) (position & (CAPACITY - 1)), entry);
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final boolean stopping = closed;
+            final int index = (int) (head & (CAPACITY - 1));
+            final Entry entry = ring.get(index);
+            if (entry != null) {
+                ring.lazySet(index, null);
+                head++;
+                forward(entry);
+            } else if (head != tail.get()) {
+                // Slot claimed but not yet published
+                Thread.yield();
+            } else if (stopping) {
+                break;
+            } else {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+        // Nothing was held back when every message was shown
+        if (sampling) {
+            for (final Map.Entry<String, Integer> category : sampled.entrySet()) {
+                if (category.getValue() > SAMPLE_LIMIT) {
+                    logger.log(effective(LogLevel.INFO), "Replace Plugin: " + (category.getValue() - SAMPLE_LIMIT)
+                            + " more '" + category.getKey().trim() + "' messages not shown");
+                }
+            }
+        }
+        if (dropped.get() > 0) {
+            logger.warn("Replace Plugin: " + dropped.get() + " log messages dropped, log buffer was full");
+        }
+    }
+
+    private void forward(final Entry entry) {
+        if (entry.category == null) {
+            logger.log(effective(entry.level), entry.message);
+            return;
+        }
+        final int count = sampled.merge(entry.category, 1, Integer::sum);
+        if (!sampling || count <= SAMPLE_LIMIT) {
+            logger.log(effective(entry.level), entry.category + entry.detail);
+        }
+    }
+
+    private static final class Entry {
+        private final LogLevel level;
+        private final String category;
+        private final String message;
+        private final Object detail;
+
+        private Entry(final LogLevel level, final String category, final String message, final Object detail) {
+            this.level = level;
+            this.category = category;
+            this.message = message;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes output files all-or-nothing
+ * <p>
+ * Content goes to a temporary file next to the output, gets its final modification time and is
+ * then renamed over the output. An interrupted build leaves either the previous output or the
+ * new one, never a truncated file with a valid looking modification time, so the up to date
+ * checks can be trusted on the next run. Leftover temporary files are removed with the other
+ * stale files in the target folders, and swept separately from the target root.
+ * <p>
+ * When durable, file content is forced to disk before the rename and the parent folders of
+ * everything written are forced once, in {@link #sync()}, at the end of the run.
+ */
+final class AtomicFileWriter {
+
+    static final String TEMP_SUFFIX = ".replace-tmp";
+
+    private final boolean durable;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    AtomicFileWriter(final boolean durable) {
+        this.durable = durable;
+    }
+
+    void write(final File outFile, final byte[] content, final long lastModified) throws IOException {
+        commit(outFile, lastModified, channel -> {
+            final ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
+    }
+
+    /**
+     * Stream the input into the output, without holding it in memory
+     */
+    void copy(final File inFile, final File outFile, final long lastModified) throws IOException {
+        commit(outFile, lastModified, channel -> {
+            try (FileChannel source = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    final long count = source.transferTo(position, size - position, channel);
+                    if (count <= 0) break;
+                    position += count;
+                }
+                if (position != size) {
+                    throw new IOException("Short copy of " + inFile + ": " + position + " of " + size + " bytes");
+                }
+            }
+        });
+    }
+
+    private void commit(final File outFile, final long lastModified, final Content content) throws IOException {
+        final File parent = outFile.getAbsoluteFile().getParentFile();
+        FileUtils.forceMkdir(parent);
+        Path temp;
+        FileChannel channel;
+        while (true) {
+            temp = parent.toPath().resolve("." + outFile.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX);
+            try {
+                // Unlike Files.createTempFile, the file gets the default permissions the output would have
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // Name taken, draw another
+            }
+        }
+        try {
+            try {
+                content.writeTo(channel);
+                if (durable) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            if (!temp.toFile().setLastModified(lastModified)) {
+                throw new IOException("Cannot set modification time of " + temp);
+            }
+            try {
+                Files.move(temp, outFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (durable) {
+            directories.add(parent.toPath());
+        }
+    }
+
+    /**
+     * Remove a file, made durable by {@link #sync()} like the renames
+     */
+    void delete(final File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        if (durable) {
+            directories.add(file.getAbsoluteFile().getParentFile().toPath());
+        }
+    }
+
+    /**
+     * Force the folders holding the renamed and deleted files, so these changes themselves survive a crash
+     */
+    void sync() {
+        for (final Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Folders cannot be opened on some platforms (Windows), renames are durable there anyway
+            }
+        }
+        directories.clear();
+    }
+
+    private interface Content {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+}
@@ -23,97 +23,88 @@
  */
 package com.github.jamorham.android.replace.token;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 //@SuppressWarnings({"WeakerAccess", "unused"})
 public class Preprocessor {
 
     private final List<String> extensions;
-    private final Map<String, Object> replace;
-    private final Map<Pattern, String> replacePatterns = new LinkedHashMap<>();
-    private final boolean verbose;
+    private final RuleAutomaton automaton;
+    private final RulePrefilter prefilter;
+    private final String fingerprint;
 
     public Preprocessor(final Set<String> extensions, final Map<String, Object> replace) {
-        this(extensions, replace, false);
+        this(extensions, literalRules(replace));
     }
 
-    public Preprocessor(final Set<String> extensions, final Map<String, Object> replace, final boolean verbose) {
+    public Preprocessor(final Set<String> extensions, final List<ReplaceRule> rules) {
         this.extensions = new ArrayList<>(extensions);
-        this.replace = replace;
-        this.verbose = verbose;
 
-        // Precompile the patterns for maximum efficiency
-        this.replace.forEach((key, value) -> {
-            replacePatterns.put(Pattern.compile(key, Pattern.LITERAL), Matcher.quoteReplacement(value.toString()));
-        });
+        // Compile all the rules into a single automaton for maximum efficiency
+        this.automaton = RuleCompiler.compile(rules);
+        this.prefilter = new RulePrefilter(this.automaton);
+        this.fingerprint = fingerprint(this.extensions, rules);
+    }
 
-        // Check for hash map inconsistency - shouldn't happen
-        if (replacePatterns.size() != replace.size()) {
-            throw new RuntimeException("Pattern matching compilation error - do you have duplicate patterns described?");
+    // Identifies the rule set, outputs made with a different one cannot be trusted
+    private static String fingerprint(final List<String> extensions, final List<ReplaceRule> rules) {
+        final StringBuilder builder = new StringBuilder();
+        extensions.stream().sorted().forEach(extension -> builder.append(extension).append('\0'));
+        for (final ReplaceRule rule : rules) {
+            builder.append('\n').append(rule.getType())
+                    .append('\0').append(rule.getPattern())
+                    .append('\0').append(rule.getReplacement());
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder();
+            for (final byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Preprocessor exception: " + e);
         }
+    }
 
+    private static List<ReplaceRule> literalRules(final Map<String, Object> replace) {
+        final List<ReplaceRule> rules = new ArrayList<>();
+        replace.forEach((key, value) -> rules.add(ReplaceRule.literal(key, value)));
+        return rules;
     }
 
-    public void process(final File inFile, final File outFile) {
-        final String fileExtension = FilenameUtils.getExtension(inFile.getName());
-        // First check if the file need to be processed
-        try {
-            // If not, the file is just copied to its destination
-            if (!this.extensions.contains(fileExtension)) {
-                if (!outFile.exists()
-                        || inFile.lastModified() != outFile.lastModified()
-                        || inFile.length() != outFile.length()) {
-                    if (verbose) System.out.println("COPY " + inFile + " -> " + outFile);
-                    FileUtils.copyFile(inFile, outFile);
-                    outFile.setLastModified(inFile.lastModified());
-                } else {
-                    if (verbose) System.out.println("No need to copy " + inFile);
-                }
-            }
-            // If yes, the file is processed
-            else {
-                if (!outFile.exists()
-                        || inFile.lastModified() != outFile.lastModified()
-                        || inFile.length() != outFile.length()) {
-                    if (verbose)
-                        System.out.println("PROCESS " + inFile + " -> " + outFile);
-                    //
-                    try {
+    // Whether the file content goes through the replace rules, otherwise it is copied as is
+    boolean isProcessed(final File inFile) {
+        return this.extensions.contains(FilenameUtils.getExtension(inFile.getName()));
+    }
 
-                        String content = FileUtils.readFileToString(inFile, StandardCharsets.UTF_8);
-                        content = processLine(content);
-                        FileUtils.writeStringToFile(outFile, content, StandardCharsets.UTF_8);
-                        outFile.setLastModified(inFile.lastModified());
-                    } catch (Exception e) {
-                        throw new RuntimeException("Failed to convert file " + inFile, e);
-                    }
-                } else {
-                    if (verbose) System.out.println("No need to process " + inFile);
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Preprocessor got exception with IO operation: " + e);
-            throw new RuntimeException("Preprocessor exception: " + e);
+    boolean isUpToDate(final File inFile, final File outFile) {
+        if (!outFile.exists() || inFile.lastModified() != outFile.lastModified()) {
+            return false;
         }
+        // Replacements change the length of processed files, so only copies can be compared
+        return isProcessed(inFile) || inFile.length() == outFile.length();
+    }
+
+    String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    // False when the UTF-8 content cannot contain any match, so it can be written unchanged
+    boolean mayMatch(final byte[] content) {
+        return this.prefilter.mayMatch(content);
     }
 
     String processLine(String line) {
-        final String[] newLine = {line};
-        this.replacePatterns.forEach((key, value) -> {
-            newLine[0] = key.matcher(newLine[0]).replaceAll(value);
-        });
-        return newLine[0];
+        return this.automaton.replace(line);
     }
 }
@@ -28,12 +28,14 @@ import org.gradle.api.Project;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -86,6 +88,40 @@ public class PreprocessorExtension {
      */
     private Map<String, Object> replace = new LinkedHashMap<>();
 
+    /**
+     * Map of identifiers, only replaced on identifier boundaries
+     */
+    private Map<String, Object> replaceWord = new LinkedHashMap<>();
+
+    /**
+     * Map of regular expressions
+     */
+    private Map<String, Object> replaceRegex = new LinkedHashMap<>();
+
+    /**
+     * Declaration order of the rules across the three maps, rules declared first win ties
+     */
+    private final Set<String> declarationOrder = new LinkedHashSet<>();
+
+    /**
+     * Worker threads of each pipeline stage
+     * Reading and writing are mostly waiting on the disk, so they get more threads than there are cores.
+     */
+    private int readThreads = 8;
+    private int replaceThreads = Runtime.getRuntime().availableProcessors();
+    private int writeThreads = 8;
+
+    /**
+     * Capacity of the queue in front of each pipeline stage
+     */
+    private int queueCapacity = 64;
+
+    /**
+     * Force outputs to disk, so they survive a crash of the machine and not only of the build
+     * Slower, files are synced one by one and their folders once at the end.
+     */
+    private boolean syncOutputs = false;
+
     private final ReentrantLock lock = new ReentrantLock();
 
     /**
@@ -269,11 +305,93 @@ public class PreprocessorExtension {
         return extensions;
     }
 
+    public void setReadThreads(int readThreads) {
+        this.readThreads = readThreads;
+    }
+
+    public int getReadThreads() {
+        return this.readThreads;
+    }
+
+    public void setReplaceThreads(int replaceThreads) {
+        this.replaceThreads = replaceThreads;
+    }
+
+    public int getReplaceThreads() {
+        return this.replaceThreads;
+    }
+
+    public void setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+    }
+
+    public int getWriteThreads() {
+        return this.writeThreads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    public void setSyncOutputs(boolean syncOutputs) {
+        this.syncOutputs = syncOutputs;
+    }
+
+    public boolean isSyncOutputs() {
+        return this.syncOutputs;
+    }
+
     public void setReplace(Map<String, Object> replace) {
+        declare(ReplaceRule.Type.LITERAL, replace);
         this.replace.putAll(replace);
     }
 
     public Map<String, Object> getReplace() {
         return this.replace;
     }
+
+    public void setReplaceWord(Map<String, Object> replaceWord) {
+        declare(ReplaceRule.Type.WORD, replaceWord);
+        this.replaceWord.putAll(replaceWord);
+    }
+
+    public Map<String, Object> getReplaceWord() {
+        return this.replaceWord;
+    }
+
+    public void setReplaceRegex(Map<String, Object> replaceRegex) {
+        declare(ReplaceRule.Type.REGEX, replaceRegex);
+        this.replaceRegex.putAll(replaceRegex);
+    }
+
+    public Map<String, Object> getReplaceRegex() {
+        return this.replaceRegex;
+    }
+
+    /**
+     * All rules in declaration order, whatever their kind
+     * Entries put straight into the maps returned by the getters come last.
+     */
+    public List<ReplaceRule> getRules() {
+        final Map<String, ReplaceRule> rules = new LinkedHashMap<>();
+        this.declarationOrder.forEach(key -> rules.put(key, null));
+        this.replace.forEach((key, value) -> rules.put(declarationKey(ReplaceRule.Type.LITERAL, key), ReplaceRule.literal(key, value)));
+        this.replaceWord.forEach((key, value) -> rules.put(declarationKey(ReplaceRule.Type.WORD, key), ReplaceRule.word(key, value)));
+        this.replaceRegex.forEach((key, value) -> rules.put(declarationKey(ReplaceRule.Type.REGEX, key), ReplaceRule.regex(key, value)));
+        // Declared but since removed from their map
+        rules.values().removeIf(Objects::isNull);
+        return new ArrayList<>(rules.values());
+    }
+
+    private void declare(final ReplaceRule.Type type, final Map<String, Object> rules) {
+        rules.keySet().forEach(key -> this.declarationOrder.add(declarationKey(type, key)));
+    }
+
+    private static String declarationKey(final ReplaceRule.Type type, final String pattern) {
+        return type + ":" + pattern;
+    }
 }
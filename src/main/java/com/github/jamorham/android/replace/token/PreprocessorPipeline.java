@@ -0,0 +1,341 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import org.gradle.api.logging.LogLevel;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the preprocessor as a pipeline of independent stages
+ * <p>
+ * The directory walk feeds {@link #submit}, then files flow through
+ * read -> replace -> write, each stage with its own worker threads and a bounded queue in front
+ * of it. A full queue blocks the stage feeding it, so a slow disk throttles the walk instead of
+ * filling memory, while the replace stage keeps the CPU busy with whatever has been read already.
+ * Files which are only copied, or which the rules prefilter proves cannot match, skip the
+ * replace stage; copied files are never loaded, the write stage streams them from the input.
+ */
+final class PreprocessorPipeline {
+
+    private final Preprocessor preprocessor;
+    private final Stage read;
+    private final Stage replace;
+    private final Stage write;
+    private final boolean rulesChanged;
+    private final AtomicFileWriter writer;
+    private final AsyncLog log;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean aborted;
+
+    // Run statistics
+    private final AtomicInteger filesCount = new AtomicInteger();
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final AtomicInteger writtenCount = new AtomicInteger();
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    PreprocessorPipeline(final Preprocessor preprocessor, final int readThreads, final int replaceThreads,
+                         final int writeThreads, final int queueCapacity) {
+        this(preprocessor, readThreads, replaceThreads, writeThreads, queueCapacity, false, new AtomicFileWriter(false), null);
+    }
+
+    /**
+     * @param rulesChanged Outputs were made with other rules, every processed file is done again
+     * @param writer       Writes the outputs, synced once the pipeline has drained
+     * @param log          Per file messages, may be null
+     */
+    PreprocessorPipeline(final Preprocessor preprocessor, final int readThreads, final int replaceThreads,
+                         final int writeThreads, final int queueCapacity, final boolean rulesChanged,
+                         final AtomicFileWriter writer, final AsyncLog log) {
+        this.preprocessor = preprocessor;
+        this.rulesChanged = rulesChanged;
+        this.writer = writer;
+        this.log = log;
+        // Created downstream first so each stage knows where to hand its work
+        this.write = new Stage("write", writeThreads, queueCapacity, null, this::write);
+        this.replace = new Stage("replace", replaceThreads, queueCapacity, write, this::replace);
+        this.read = new Stage("read", readThreads, queueCapacity, replace, this::read);
+    }
+
+    void start() {
+        write.start();
+        replace.start();
+        read.start();
+    }
+
+    /**
+     * Walk stage entry point, blocks while the read queue is full
+     */
+    void submit(final File inFile, final File outFile) throws InterruptedException {
+        checkFailure();
+        filesCount.incrementAndGet();
+        read.put(new Job(inFile, outFile));
+    }
+
+    /**
+     * Signal the end of the walk and wait for every stage to drain
+     * <p>
+     * Waiting is not interruptible, so no worker thread outlives the pipeline; an interrupt is
+     * kept for the caller. When the walk did not complete, files still queued are dropped and
+     * nothing is thrown, leaving the walk's own exception to propagate.
+     *
+     * @param complete Every file was submitted
+     */
+    void finish(final boolean complete) {
+        if (!complete) {
+            aborted = true;
+        }
+        boolean interrupted = Thread.interrupted();
+        interrupted |= read.close();
+        interrupted |= read.join();
+        interrupted |= replace.join();
+        interrupted |= write.join();
+        writer.sync();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (complete) {
+            if (interrupted) {
+                throw new RuntimeException("Preprocessor interrupted");
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Queue occupancy per stage, to help tuning thread counts and queue capacity
+     */
+    String getQueueStatistics() {
+        return read.statistics() + ", " + replace.statistics() + ", " + write.statistics();
+    }
+
+    /**
+     * Number of files submitted, read and written so far, and how many of the processed files
+     * the prefilter sent straight to the write stage
+     */
+    String getStatistics() {
+        final int processed = processedCount.get();
+        final int rejected = rejectedCount.get();
+        return "files=" + filesCount.get() + " read=" + readCount.get() + " written=" + writtenCount.get()
+                + " prefilter rejected=" + rejected + "/" + processed
+                + " (" + (processed == 0 ? 0 : rejected * 100 / processed) + "%)";
+    }
+
+    private void checkFailure() {
+        final Throwable throwable = failure.get();
+        if (throwable != null) {
+            if (throwable instanceof RuntimeException) throw (RuntimeException) throwable;
+            throw new RuntimeException("Preprocessor exception: " + throwable, throwable);
+        }
+    }
+
+    // Read stage
+    private void read(final Job job) throws Exception {
+        final boolean processed = preprocessor.isProcessed(job.inFile);
+        if (!(processed && rulesChanged) && preprocessor.isUpToDate(job.inFile, job.outFile)) {
+            log(processed ? "No need to process " : "No need to copy ", job.inFile);
+            return;
+        }
+        log(processed ? "PROCESS " : "COPY ", job);
+        job.lastModified = job.inFile.lastModified();
+        readCount.incrementAndGet();
+        if (processed) {
+            job.content = Files.readAllBytes(job.inFile.toPath());
+            processedCount.incrementAndGet();
+            if (preprocessor.mayMatch(job.content)) {
+                replace.put(job);
+                return;
+            }
+            // Nothing to replace, written as read
+            rejectedCount.incrementAndGet();
+        }
+        write.put(job);
+    }
+
+    // Replace stage
+    private void replace(final Job job) throws Exception {
+        try {
+            final String content = new String(job.content, StandardCharsets.UTF_8);
+            job.content = preprocessor.processLine(content).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to convert file " + job.inFile, e);
+        }
+        write.put(job);
+    }
+
+    // Write stage
+    private void write(final Job job) throws Exception {
+        if (job.content == null) {
+            // Copy only, streamed from the input
+            writer.copy(job.inFile, job.outFile, job.lastModified);
+        } else {
+            writer.write(job.outFile, job.content, job.lastModified);
+        }
+        writtenCount.incrementAndGet();
+    }
+
+    // Formatting is left to the log thread
+    private void log(final String category, final Object detail) {
+        if (log != null) log.sample(LogLevel.INFO, category, detail);
+    }
+
+    private interface Work {
+        void run(Job job) throws Exception;
+    }
+
+    private static final class Job {
+        private final File inFile;
+        private final File outFile;
+        private long lastModified;
+        // Null for files which are only copied
+        private byte[] content;
+
+        private Job(final File inFile, final File outFile) {
+            this.inFile = inFile;
+            this.outFile = outFile;
+        }
+
+        @Override
+        public String toString() {
+            return inFile + " -> " + outFile;
+        }
+    }
+
+    // Marks the end of a queue, one per worker
+    private static final Job END = new Job(null, null);
+
+    private final class Stage {
+        private final String name;
+        private final BlockingQueue<Job> queue;
+        private final Stage next;
+        private final Work work;
+        private final List<Thread> threads = new ArrayList<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong occupancy = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+
+        private Stage(final String name, final int threadCount, final int capacity, final Stage next, final Work work) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            this.next = next;
+            this.work = work;
+            for (int i = 0; i < Math.max(1, threadCount); i++) {
+                final Thread thread = new Thread(this::loop, "replace-preprocessor-" + name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+
+        private void start() {
+            running.set(threads.size());
+            threads.forEach(Thread::start);
+        }
+
+        private void put(final Job job) throws InterruptedException {
+            final int size = queue.size();
+            samples.incrementAndGet();
+            occupancy.addAndGet(size);
+            peak.accumulateAndGet(size, Math::max);
+            if (!queue.offer(job)) {
+                final long begin = System.nanoTime();
+                queue.put(job);
+                blocked.addAndGet(System.nanoTime() - begin);
+            }
+        }
+
+        // Returns whether the calling thread was interrupted meanwhile
+        private boolean close() {
+            boolean interrupted = false;
+            for (int i = 0; i < threads.size(); i++) {
+                while (true) {
+                    try {
+                        queue.put(END);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            return interrupted;
+        }
+
+        // Returns whether the calling thread was interrupted meanwhile
+        private boolean join() {
+            boolean interrupted = false;
+            for (final Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            return interrupted;
+        }
+
+        private void loop() {
+            try {
+                Job job;
+                while ((job = queue.take()) != END) {
+                    // After a failure keep draining so upstream stages never block
+                    if (aborted || failure.get() != null) continue;
+                    try {
+                        work.run(job);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                // Last worker out closes the next stage
+                if (running.decrementAndGet() == 0 && next != null && next.close()) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private String statistics() {
+            final long count = samples.get();
+            return name + ": threads=" + threads.size()
+                    + " capacity=" + (queue.size() + queue.remainingCapacity())
+                    + " peak=" + peak.get()
+                    + " average=" + (count == 0 ? 0 : occupancy.get() / count)
+                    + " blocked=" + blocked.get() / 1000000 + "ms";
+        }
+    }
+}
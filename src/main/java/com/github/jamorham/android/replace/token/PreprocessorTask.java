@@ -29,6 +29,7 @@ import org.apache.commons.io.FileUtils;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.Project;
 import org.gradle.api.file.FileTree;
+import org.gradle.api.logging.LogLevel;
 import org.gradle.api.tasks.TaskAction;
 
 import java.io.File;
@@ -36,10 +37,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,9 +55,15 @@ public class PreprocessorTask extends DefaultTask {
     // Manifest
     public static final String ANDROID_MANIFEST = "AndroidManifest.xml";
 
+    // Fingerprint of the rules the outputs were made with
+    public static final String RULES_FINGERPRINT = ".replace-rules";
+
     // Extension
     private final PreprocessorExtension extension;
 
+    // Log of the running process
+    private AsyncLog asyncLog;
+
     @Inject
     public PreprocessorTask() {
         this.extension = getProject().getExtensions().findByType(PreprocessorExtension.class);
@@ -70,13 +76,15 @@ public class PreprocessorTask extends DefaultTask {
         boolean setSourcesDefaults = false;
         boolean setResourcesDefaults = false;
 
+        // Workers only append to the log, the Gradle logger is called from a single thread
+        this.asyncLog = new AsyncLog(getLogger(), this.extension.isVerbose());
+
          try {
 
             extension.getLock().lock();
 
-            final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
             // Instantiate the preprocessor
-            final Preprocessor preprocessor = new Preprocessor(this.extension.getExtensions(), this.extension.getReplace(), this.extension.isVerbose());
+            final Preprocessor preprocessor = new Preprocessor(this.extension.getExtensions(), this.extension.getRules());
 
             log("Starting android replace token preprocessor");
 
@@ -86,6 +94,21 @@ public class PreprocessorTask extends DefaultTask {
             final Set<String> resources = this.extension.getResources();
 
             final File target = this.extension.getTarget();
+            final AtomicFileWriter writer = new AtomicFileWriter(this.extension.isSyncOutputs());
+            final RulesFingerprint rules = new RulesFingerprint(new File(target, RULES_FINGERPRINT), preprocessor.getFingerprint(), writer);
+            // Invalidated before any output is written, so an aborted run is redone whatever the next rules
+            final boolean rulesChanged = rules.begin();
+            if (rulesChanged) {
+                log("Replace rules changed, all processed files will be updated");
+            }
+            final PreprocessorPipeline pipeline = new PreprocessorPipeline(preprocessor
+                    , this.extension.getReadThreads()
+                    , this.extension.getReplaceThreads()
+                    , this.extension.getWriteThreads()
+                    , this.extension.getQueueCapacity()
+                    , rulesChanged
+                    , writer
+                    , this.asyncLog);
             final File resTarget = new File(target, "main/res");
             final File manifestTarget = new File(target, ANDROID_MANIFEST);
 
@@ -111,37 +134,52 @@ public class PreprocessorTask extends DefaultTask {
 
             log("  Processing files...");
 
-            // Loop through all source files
-            for (final String source : sources) {
-                executor.submit(() -> {
+            // Output files per target folder, anything else found there afterwards is stale
+            final Map<File, Set<String>> outputs = new LinkedHashMap<>();
+
+            // This thread is the walk stage, the pipeline does the rest
+            pipeline.start();
+            boolean walked = false;
+            try {
+                // Loop through all source files
+                for (final String source : sources) {
                     final String pair = getFolderPair(source);
                     if (pair != null) {
                         final File srcTarget = new File(target, pair);
-                        processFolder(source, srcTarget, project, preprocessor);
-                        processManifest(source, manifestTarget, preprocessor);
+                        processFolder(source, srcTarget, project, pipeline, outputs);
+                        processManifest(source, manifestTarget, pipeline);
                     } else {
                         final String error_message = "Failure to parse source folder: " + source;
                         log(error_message);
                         throw new RuntimeException(error_message);
                     }
-                });
-            } // per source folder
+                } // per source folder
 
-            // Loop through all resource files
-            for (String resource : resources) {
-                executor.submit(() -> {
-                    processFolder(resource, resTarget, project, preprocessor);
-                });
-            } // per resource folder
+                // Loop through all resource files
+                for (String resource : resources) {
+                    processFolder(resource, resTarget, project, pipeline, outputs);
+                } // per resource folder
 
-            executor.shutdown();    // prepare to end threading
-            try {
-                while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
-                    log("Awaiting completion of threads.");
-                }
+                walked = true;
             } catch (InterruptedException e) {
-                log("Got interruption waiting for threads to finish! " + e);
+                log("Got interruption feeding the pipeline! " + e);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Preprocessor interrupted", e);
+            } finally {
+                // Always waits for the workers, throws if they failed or were interrupted once the walk is complete
+                pipeline.finish(walked);
             }
+            log("Pipeline queues: " + pipeline.getQueueStatistics());
+            log("statistics " + pipeline.getStatistics());
+
+            // Only reached when every file was walked and written, the file sets are complete
+            outputs.forEach((folder, files) -> removeNotInSet(files, project.fileTree(folder)));
+
+            // Only recorded once every output matches the current rules
+            rules.commit();
+
+            // The manifest and rules fingerprint live in the target root, which is not swept above
+            removeTempFiles(target);
 
             final AppExtension extension = (AppExtension) project.getExtensions().getByName("android");
 
@@ -159,11 +197,14 @@ public class PreprocessorTask extends DefaultTask {
                 resources.clear();
             }
 
+            final long duration = System.currentTimeMillis() - startTime;
+            log("Finished processing in " + duration + " ms");
+
         } finally {
             extension.getLock().unlock();
+            this.asyncLog.close();
+            this.asyncLog = null;
         }
-        final long duration = System.currentTimeMillis() - startTime;
-        log("Finished processing in " + duration + " ms");
 
     }
 
@@ -177,35 +218,36 @@ public class PreprocessorTask extends DefaultTask {
         return pathA[pathA.length - 2] + "/" + pathA[pathA.length - 1];
     }
 
-    private void processFolder(final String source, final File target, final Project project, final Preprocessor preprocessor) {
+    private void processFolder(final String source, final File target, final Project project, final PreprocessorPipeline pipeline, final Map<File, Set<String>> outputs) throws InterruptedException {
         try {
             FileUtils.forceMkdirParent(target);
         } catch (IOException e) {
             //
         }
-        final HashSet<String> files = new HashSet<>();
+        final Set<String> files = outputs.computeIfAbsent(target, key -> new HashSet<>());
         final File srcDir = new File(source);
+        int count = 0;
         for (final File file : project.fileTree(srcDir)) {
-            log("Processing " + file.toString());
+            asyncLog.sample(LogLevel.INFO, "Replace Plugin: Processing ", file);
             final File out = target.toPath().resolve(srcDir.toPath().relativize(file.toPath())).toFile();
             files.add(out.getAbsolutePath());
-            preprocessor.process(file, out);
+            pipeline.submit(file, out);
+            count++;
         }
-        log("Processed " + files.size() + " files in " + source);
-        removeNotInSet(files, project.fileTree(target));
+        log("Queued " + count + " files in " + source);
     }
 
-    private void processManifest(final String source, final File manifestTarget, final Preprocessor preprocessor) {
+    private void processManifest(final String source, final File manifestTarget, final PreprocessorPipeline pipeline) throws InterruptedException {
         // Special handling of manifest
         final File srcDir = new File(source);
         final File manifest = new File(srcDir.getParent() + "/" + ANDROID_MANIFEST);
         log("manifest: " + manifest.getAbsolutePath());
         if (manifest.exists()) {
-            preprocessor.process(manifest, manifestTarget);
+            pipeline.submit(manifest, manifestTarget);
         }
     }
 
-    private void removeNotInSet(final HashSet<String> files, final FileTree tree) {
+    private void removeNotInSet(final Set<String> files, final FileTree tree) {
         for (final File file : tree) {
             if (!files.contains(file.getAbsolutePath())) {
                 log("removing file not in source tree: " + file.getAbsolutePath() + " success: " + file.delete());
@@ -213,10 +255,24 @@ public class PreprocessorTask extends DefaultTask {
         }
     }
 
-    // Print out a string if verbose is enable
+    // Leftovers of writes interrupted by an earlier build
+    private void removeTempFiles(final File folder) {
+        final File[] files = folder.listFiles((dir, name) -> name.endsWith(AtomicFileWriter.TEMP_SUFFIX));
+        if (files == null) return;
+        for (final File file : files) {
+            if (file.isFile()) {
+                log("removing temporary file: " + file.getAbsolutePath() + " success: " + file.delete());
+            }
+        }
+    }
+
+    // Log at info level, or lifecycle if verbose is enabled
     private void log(final String msg) {
-        if (this.extension != null && this.extension.isVerbose()) {
-            System.out.println("Replace Plugin: " + msg);
+        final AsyncLog log = this.asyncLog;
+        if (log != null) {
+            log.log(LogLevel.INFO, "Replace Plugin: " + msg);
+        } else if (this.extension != null && this.extension.isVerbose()) {
+            getLogger().lifecycle("Replace Plugin: " + msg);
         }
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+/**
+ * A single replacement rule
+ * <p>
+ * All rules of a preprocessor are compiled together into one {@link RuleAutomaton}
+ */
+public final class ReplaceRule {
+
+    public enum Type {
+        /**
+         * Pattern is matched literally
+         */
+        LITERAL,
+        /**
+         * Pattern is matched literally, but only when not preceded or followed by an identifier character
+         */
+        WORD,
+        /**
+         * Pattern is a regular expression, restricted to the syntax supported by {@link RuleCompiler}
+         */
+        REGEX
+    }
+
+    private final Type type;
+    private final String pattern;
+    private final String replacement;
+
+    public ReplaceRule(final Type type, final String pattern, final Object replacement) {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException("Replace rule pattern cannot be empty");
+        }
+        this.type = type;
+        this.pattern = pattern;
+        this.replacement = String.valueOf(replacement);
+    }
+
+    public static ReplaceRule literal(final String pattern, final Object replacement) {
+        return new ReplaceRule(Type.LITERAL, pattern, replacement);
+    }
+
+    public static ReplaceRule word(final String pattern, final Object replacement) {
+        return new ReplaceRule(Type.WORD, pattern, replacement);
+    }
+
+    public static ReplaceRule regex(final String pattern, final Object replacement) {
+        return new ReplaceRule(Type.REGEX, pattern, replacement);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getPattern() {
+        return this.pattern;
+    }
+
+    public String getReplacement() {
+        return this.replacement;
+    }
+
+    @Override
+    public String toString() {
+        return this.type + " '" + this.pattern + "' -> '" + this.replacement + "'";
+    }
+}
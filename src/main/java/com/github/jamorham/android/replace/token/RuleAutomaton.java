@@ -0,0 +1,318 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic automaton recognising every replace rule at once, built by {@link RuleCompiler}
+ * <p>
+ * Text is scanned left to right, the longest match wins and on equal length the rule declared
+ * first wins. Replacement output is never rescanned.
+ * <p>
+ * A right to left pass first records, for each position, which states can still reach a valid
+ * match. The left to right pass then only starts the automaton where a match is certain and stops
+ * it as soon as no longer match is possible, so every character is looked at a bounded number of
+ * times and matching stays linear in the length of the text.
+ */
+final class RuleAutomaton {
+
+    static final int DEAD = -1;
+    static final int START = 0;
+    static final int ASCII = 128;
+
+    // Cached live sets kept between texts, per thread
+    private static final int MAX_CACHED_SETS = 4096;
+
+    private final String[] replacements;
+    private final boolean[] wordStart;
+    private final boolean[] wordEnd;
+
+    // Dense table for ASCII input, indexed state * ASCII + char
+    private final int[] asciiNext;
+    // Sorted (lo, hi, target) triples per state for everything else
+    private final int[][] transitions;
+    // Accepted rule indices per state, lowest first, or null
+    private final int[][] accepts;
+    // States accepting a valid rule, indexed by afterIdentifier * 2 + beforeIdentifier
+    private final long[][] acceptingSets = new long[4][];
+    private final boolean anyWordStart;
+    private final ThreadLocal<LiveSets> liveSets = ThreadLocal.withInitial(LiveSets::new);
+
+    RuleAutomaton(final List<ReplaceRule> rules, final List<int[]> transitions, final List<int[]> accepts) {
+        final int rulesCount = rules.size();
+        this.replacements = new String[rulesCount];
+        this.wordStart = new boolean[rulesCount];
+        this.wordEnd = new boolean[rulesCount];
+        boolean anyWordStart = false;
+        for (int i = 0; i < rulesCount; i++) {
+            final ReplaceRule rule = rules.get(i);
+            final String pattern = rule.getPattern();
+            this.replacements[i] = rule.getReplacement();
+            if (rule.getType() == ReplaceRule.Type.WORD) {
+                // Like \b, a boundary is only needed next to identifier characters of the pattern itself
+                this.wordStart[i] = isIdentifierChar(pattern.charAt(0));
+                this.wordEnd[i] = isIdentifierChar(pattern.charAt(pattern.length() - 1));
+                anyWordStart |= this.wordStart[i];
+            }
+        }
+        this.anyWordStart = anyWordStart;
+
+        final int states = transitions.size();
+        this.transitions = transitions.toArray(new int[states][]);
+        this.accepts = accepts.toArray(new int[states][]);
+        for (int kind = 0; kind < this.acceptingSets.length; kind++) {
+            final long[] set = new long[(states + 63) >>> 6];
+            for (int state = 0; state < states; state++) {
+                if (this.accepts[state] == null) continue;
+                for (final int rule : this.accepts[state]) {
+                    if (isValid(rule, kind >= 2, (kind & 1) != 0)) {
+                        set[state >>> 6] |= 1L << state;
+                        break;
+                    }
+                }
+            }
+            this.acceptingSets[kind] = set;
+        }
+        this.asciiNext = new int[states * ASCII];
+        Arrays.fill(this.asciiNext, DEAD);
+        for (int state = 0; state < states; state++) {
+            final int[] t = this.transitions[state];
+            for (int i = 0; i < t.length && t[i] < ASCII; i += 3) {
+                for (int c = t[i]; c <= Math.min(t[i + 1], ASCII - 1); c++) {
+                    this.asciiNext[state * ASCII + c] = t[i + 2];
+                }
+            }
+        }
+    }
+
+    boolean isAccepting(final int state) {
+        return this.accepts[state] != null;
+    }
+
+    // Whether any character outside ASCII leads somewhere from this state
+    boolean hasNonAsciiTransition(final int state) {
+        final int[] t = this.transitions[state];
+        return t.length > 0 && t[t.length - 2] >= ASCII;
+    }
+
+    int next(final int state, final char c) {
+        if (c < ASCII) {
+            return this.asciiNext[state * ASCII + c];
+        }
+        final int[] t = this.transitions[state];
+        int low = 0;
+        int high = t.length / 3 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (c < t[mid * 3]) {
+                high = mid - 1;
+            } else if (c > t[mid * 3 + 1]) {
+                low = mid + 1;
+            } else {
+                return t[mid * 3 + 2];
+            }
+        }
+        return DEAD;
+    }
+
+    String replace(final String text) {
+        final int length = text.length();
+        final LiveSets sets = this.liveSets.get();
+        sets.trim();
+        // Which states can still reach a valid match, per position, for both kinds of start
+        final int[] live = sets.scan(text, false);
+        final int[] liveAfterIdentifier = this.anyWordStart ? sets.scan(text, true) : live;
+
+        StringBuilder result = null;
+        int copied = 0;
+        int i = 0;
+        while (i < length) {
+            final boolean afterIdentifier = i > 0 && isIdentifierChar(text.charAt(i - 1));
+            final int[] reachable = afterIdentifier ? liveAfterIdentifier : live;
+            if (!sets.contains(reachable[i], START)) {
+                i++;
+                continue;
+            }
+            // A match starts here, stop as soon as no longer match can follow
+            int state = START;
+            int matchEnd = -1;
+            int matchRule = -1;
+            int j = i;
+            while (true) {
+                final int[] accepted = this.accepts[state];
+                if (accepted != null) {
+                    final boolean beforeIdentifier = j < length && isIdentifierChar(text.charAt(j));
+                    for (final int rule : accepted) {
+                        if (isValid(rule, afterIdentifier, beforeIdentifier)) {
+                            matchEnd = j;
+                            matchRule = rule;
+                            break;
+                        }
+                    }
+                }
+                if (j == length) break;
+                final int next = next(state, text.charAt(j));
+                if (next == DEAD || !sets.contains(reachable[j + 1], next)) break;
+                state = next;
+                j++;
+            }
+            if (matchRule < 0) {
+                i++;
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuilder(length + 16);
+            }
+            result.append(text, copied, i).append(this.replacements[matchRule]);
+            copied = i = matchEnd;
+        }
+        if (result == null) {
+            return text;
+        }
+        return result.append(text, copied, length).toString();
+    }
+
+    // Word boundaries, given whether the characters around the match are identifier characters
+    private boolean isValid(final int rule, final boolean afterIdentifier, final boolean beforeIdentifier) {
+        return !(this.wordStart[rule] && afterIdentifier) && !(this.wordEnd[rule] && beforeIdentifier);
+    }
+
+    static boolean isIdentifierChar(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static boolean contains(final long[] set, final int state) {
+        return (set[state >>> 6] & (1L << state)) != 0;
+    }
+
+    /**
+     * Sets of states from which a valid match can still be reached, computed right to left
+     * <p>
+     * The set for position j holds the states accepting a rule which is valid at j, plus every
+     * state whose transition on the character at j leads into the set for j + 1. The distinct
+     * sets met in practice are few, so they are interned and their transitions cached, which
+     * makes this one table lookup per character. Each worker thread keeps its own cache.
+     */
+    private final class LiveSets {
+        private final List<long[]> sets = new ArrayList<>();
+        private final Map<StateSet, Integer> ids = new HashMap<>();
+        // Cached transitions, ASCII ones at ((id * 2 + afterIdentifier) * ASCII + char) + 1, 0 if unknown
+        private int[] asciiSteps = new int[0];
+        private final Map<Long, Integer> steps = new HashMap<>();
+
+        void trim() {
+            if (this.sets.size() > MAX_CACHED_SETS) {
+                this.sets.clear();
+                this.ids.clear();
+                this.steps.clear();
+                this.asciiSteps = new int[0];
+            }
+        }
+
+        boolean contains(final int id, final int state) {
+            return RuleAutomaton.contains(this.sets.get(id), state);
+        }
+
+        int[] scan(final String text, final boolean afterIdentifier) {
+            final int length = text.length();
+            final int[] live = new int[length + 1];
+            int id = intern(acceptingSets[afterIdentifier ? 2 : 0]);
+            live[length] = id;
+            for (int j = length - 1; j >= 0; j--) {
+                id = step(id, text.charAt(j), afterIdentifier);
+                live[j] = id;
+            }
+            return live;
+        }
+
+        private int step(final int id, final char c, final boolean afterIdentifier) {
+            final int kind = afterIdentifier ? 1 : 0;
+            if (c < ASCII) {
+                final int index = (id * 2 + kind) * ASCII + c;
+                if (index >= this.asciiSteps.length) {
+                    this.asciiSteps = Arrays.copyOf(this.asciiSteps, Math.max(index + 1, this.asciiSteps.length * 2));
+                }
+                if (this.asciiSteps[index] == 0) {
+                    this.asciiSteps[index] = compute(id, c, afterIdentifier) + 1;
+                }
+                return this.asciiSteps[index] - 1;
+            }
+            final long key = ((long) id << 17) | ((long) kind << 16) | c;
+            Integer next = this.steps.get(key);
+            if (next == null) {
+                next = compute(id, c, afterIdentifier);
+                this.steps.put(key, next);
+            }
+            return next;
+        }
+
+        private int compute(final int id, final char c, final boolean afterIdentifier) {
+            final long[] following = this.sets.get(id);
+            final long[] result = acceptingSets[(afterIdentifier ? 2 : 0) + (isIdentifierChar(c) ? 1 : 0)].clone();
+            for (int state = 0; state < transitions.length; state++) {
+                final int next = next(state, c);
+                if (next != DEAD && RuleAutomaton.contains(following, next)) {
+                    result[state >>> 6] |= 1L << state;
+                }
+            }
+            return intern(result);
+        }
+
+        private int intern(final long[] set) {
+            final StateSet key = new StateSet(set);
+            Integer id = this.ids.get(key);
+            if (id == null) {
+                id = this.sets.size();
+                this.sets.add(set);
+                this.ids.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    private static final class StateSet {
+        private final long[] bits;
+        private final int hash;
+
+        StateSet(final long[] bits) {
+            this.bits = bits;
+            this.hash = Arrays.hashCode(bits);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof StateSet && Arrays.equals(bits, ((StateSet) o).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
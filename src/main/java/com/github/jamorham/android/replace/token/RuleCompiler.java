@@ -0,0 +1,709 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compiles a list of {@link ReplaceRule} into a single deterministic automaton
+ * <p>
+ * Every rule is parsed to a small syntax tree, turned into a Thompson NFA and all NFAs are
+ * joined under one start state. Subset construction then gives a DFA which recognises every
+ * rule at once, so matching cost does not depend on the number of rules.
+ * <p>
+ * Only regular constructs are accepted. Anything which would need a backtracking engine
+ * (back references, lookaround, atomic groups, lazy or possessive quantifiers) or which has
+ * no meaning without one (anchors, inline flags) is rejected when the rules are compiled.
+ */
+final class RuleCompiler {
+
+    // Upper bound on DFA size, protects against pathological rule sets
+    static final int MAX_DFA_STATES = 20000;
+
+    // Upper bound on NFA size, nested repetitions multiply so {n,m} alone cannot bound it
+    static final int MAX_NFA_STATES = 250000;
+
+    // Upper bound on counted repetition {n,m}
+    static final int MAX_REPEAT = 256;
+
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    private static final int[] DOT = {0, '\n' - 1, '\n' + 1, '\r' - 1, '\r' + 1, 0x84, 0x86, 0x2027, 0x202A, 0xFFFF};
+
+    private RuleCompiler() {
+    }
+
+    static RuleAutomaton compile(final List<ReplaceRule> rules) {
+        final Set<String> seen = new HashSet<>();
+        final Nfa nfa = new Nfa();
+        final int start = nfa.newState();
+        for (int i = 0; i < rules.size(); i++) {
+            final ReplaceRule rule = rules.get(i);
+            if (!seen.add(rule.getType() + ":" + rule.getPattern())) {
+                throw new RuntimeException("Pattern matching compilation error - do you have duplicate patterns described? " + rule);
+            }
+            final Node node;
+            try {
+                node = rule.getType() == ReplaceRule.Type.REGEX
+                        ? new Parser(rule.getPattern()).parse()
+                        : Node.literal(rule.getPattern());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid replace rule " + rule + ": " + e.getMessage(), e);
+            }
+            if (node.matchesEmpty()) {
+                throw new IllegalArgumentException("Invalid replace rule " + rule + ": pattern can match an empty string");
+            }
+            final int[] fragment;
+            try {
+                fragment = node.build(nfa);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid replace rule " + rule + ": " + e.getMessage(), e);
+            }
+            nfa.epsilon(start, fragment[0]);
+            nfa.accept(fragment[1], i);
+        }
+        return determinize(nfa, start, rules);
+    }
+
+    // Subset construction
+    private static RuleAutomaton determinize(final Nfa nfa, final int nfaStart, final List<ReplaceRule> rules) {
+        final Map<IntSet, Integer> ids = new HashMap<>();
+        final List<int[]> sets = new ArrayList<>();
+        final List<int[]> transitions = new ArrayList<>();
+        final List<int[]> accepts = new ArrayList<>();
+
+        final int[] startSet = nfa.closure(new int[]{nfaStart});
+        ids.put(new IntSet(startSet), 0);
+        sets.add(startSet);
+
+        for (int current = 0; current < sets.size(); current++) {
+            final int[] members = sets.get(current);
+
+            // Accepting rules, lowest index first
+            final TreeSet<Integer> accepted = new TreeSet<>();
+            for (final int s : members) {
+                if (nfa.acceptRule(s) >= 0) accepted.add(nfa.acceptRule(s));
+            }
+            accepts.add(accepted.isEmpty() ? null : accepted.stream().mapToInt(Integer::intValue).toArray());
+
+            // Split the character space at every range boundary of the member states
+            final TreeSet<Integer> cuts = new TreeSet<>();
+            for (final int s : members) {
+                for (final Edge edge : nfa.edges(s)) {
+                    for (int r = 0; r < edge.ranges.length; r += 2) {
+                        cuts.add(edge.ranges[r]);
+                        cuts.add(edge.ranges[r + 1] + 1);
+                    }
+                }
+            }
+
+            // Triples of (lo, hi, target)
+            final List<int[]> out = new ArrayList<>();
+            Integer lo = null;
+            for (final int cut : cuts) {
+                if (lo != null && lo < cut) {
+                    final int hi = cut - 1;
+                    final TreeSet<Integer> targets = new TreeSet<>();
+                    for (final int s : members) {
+                        for (final Edge edge : nfa.edges(s)) {
+                            if (edge.contains(lo)) targets.add(edge.target);
+                        }
+                    }
+                    if (!targets.isEmpty()) {
+                        final int[] closure = nfa.closure(targets.stream().mapToInt(Integer::intValue).toArray());
+                        final IntSet key = new IntSet(closure);
+                        Integer id = ids.get(key);
+                        if (id == null) {
+                            id = sets.size();
+                            if (id >= MAX_DFA_STATES) {
+                                throw new IllegalArgumentException("Replace rules are too complex, automaton exceeds " + MAX_DFA_STATES + " states");
+                            }
+                            ids.put(key, id);
+                            sets.add(closure);
+                        }
+                        final int[] previous = out.isEmpty() ? null : out.get(out.size() - 1);
+                        if (previous != null && previous[2] == id && previous[1] + 1 == lo) {
+                            previous[1] = hi;
+                        } else {
+                            out.add(new int[]{lo, hi, id});
+                        }
+                    }
+                }
+                lo = cut;
+            }
+            final int[] flat = new int[out.size() * 3];
+            for (int t = 0; t < out.size(); t++) {
+                System.arraycopy(out.get(t), 0, flat, t * 3, 3);
+            }
+            transitions.add(flat);
+        }
+
+        return new RuleAutomaton(rules, transitions, accepts);
+    }
+
+    /**
+     * Thompson NFA under construction
+     */
+    private static final class Nfa {
+        private final List<List<Integer>> epsilons = new ArrayList<>();
+        private final List<List<Edge>> edges = new ArrayList<>();
+        private final List<Integer> accepts = new ArrayList<>();
+
+        int newState() {
+            if (accepts.size() >= MAX_NFA_STATES) {
+                throw new IllegalArgumentException("Replace rules are too complex, automaton exceeds " + MAX_NFA_STATES + " states");
+            }
+            epsilons.add(new ArrayList<>());
+            edges.add(new ArrayList<>());
+            accepts.add(-1);
+            return accepts.size() - 1;
+        }
+
+        void epsilon(final int from, final int to) {
+            epsilons.get(from).add(to);
+        }
+
+        void edge(final int from, final int[] ranges, final int to) {
+            edges.get(from).add(new Edge(ranges, to));
+        }
+
+        void accept(final int state, final int rule) {
+            accepts.set(state, rule);
+        }
+
+        int acceptRule(final int state) {
+            return accepts.get(state);
+        }
+
+        List<Edge> edges(final int state) {
+            return edges.get(state);
+        }
+
+        int[] closure(final int[] states) {
+            final TreeSet<Integer> result = new TreeSet<>();
+            final ArrayList<Integer> stack = new ArrayList<>();
+            for (final int s : states) {
+                if (result.add(s)) stack.add(s);
+            }
+            while (!stack.isEmpty()) {
+                final int s = stack.remove(stack.size() - 1);
+                for (final int next : epsilons.get(s)) {
+                    if (result.add(next)) stack.add(next);
+                }
+            }
+            return result.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static final class Edge {
+        // Sorted, disjoint inclusive pairs
+        final int[] ranges;
+        final int target;
+
+        Edge(final int[] ranges, final int target) {
+            this.ranges = ranges;
+            this.target = target;
+        }
+
+        boolean contains(final int c) {
+            for (int r = 0; r < ranges.length; r += 2) {
+                if (c >= ranges[r] && c <= ranges[r + 1]) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class IntSet {
+        private final int[] values;
+        private final int hash;
+
+        IntSet(final int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof IntSet && Arrays.equals(values, ((IntSet) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Regular expression syntax tree
+     */
+    private abstract static class Node {
+
+        abstract boolean matchesEmpty();
+
+        // Returns {start, end} of the built fragment
+        abstract int[] build(Nfa nfa);
+
+        static Node literal(final String text) {
+            final List<Node> chars = new ArrayList<>();
+            for (int i = 0; i < text.length(); i++) {
+                chars.add(new CharNode(new int[]{text.charAt(i), text.charAt(i)}));
+            }
+            return new ConcatNode(chars);
+        }
+    }
+
+    private static final class CharNode extends Node {
+        private final int[] ranges;
+
+        CharNode(final int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            return false;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            final int start = nfa.newState();
+            final int end = nfa.newState();
+            nfa.edge(start, ranges, end);
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class ConcatNode extends Node {
+        private final List<Node> nodes;
+
+        ConcatNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            for (final Node node : nodes) {
+                if (!node.matchesEmpty()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            final int start = nfa.newState();
+            int end = start;
+            for (final Node node : nodes) {
+                final int[] fragment = node.build(nfa);
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class AltNode extends Node {
+        private final List<Node> nodes;
+
+        AltNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            for (final Node node : nodes) {
+                if (node.matchesEmpty()) return true;
+            }
+            return false;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            final int start = nfa.newState();
+            final int end = nfa.newState();
+            for (final Node node : nodes) {
+                final int[] fragment = node.build(nfa);
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], end);
+            }
+            return new int[]{start, end};
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        private final Node node;
+        private final int min;
+        private final int max; // -1 for unbounded
+
+        RepeatNode(final Node node, final int min, final int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean matchesEmpty() {
+            return min == 0 || node.matchesEmpty();
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            final int start = nfa.newState();
+            int end = start;
+            for (int i = 0; i < min; i++) {
+                final int[] fragment = node.build(nfa);
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            if (max < 0) {
+                final int[] fragment = node.build(nfa);
+                final int exit = nfa.newState();
+                nfa.epsilon(end, fragment[0]);
+                nfa.epsilon(end, exit);
+                nfa.epsilon(fragment[1], fragment[0]);
+                nfa.epsilon(fragment[1], exit);
+                end = exit;
+            } else {
+                final int exit = nfa.newState();
+                for (int i = min; i < max; i++) {
+                    final int[] fragment = node.build(nfa);
+                    nfa.epsilon(end, exit);
+                    nfa.epsilon(end, fragment[0]);
+                    end = fragment[1];
+                }
+                nfa.epsilon(end, exit);
+                end = exit;
+            }
+            return new int[]{start, end};
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset of java.util.regex syntax
+     */
+    private static final class Parser {
+        private final String pattern;
+        private int pos;
+
+        Parser(final String pattern) {
+            this.pattern = pattern;
+        }
+
+        Node parse() {
+            final Node node = parseAlternation();
+            if (pos < pattern.length()) {
+                throw error("unbalanced ')'");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            final List<Node> nodes = new ArrayList<>();
+            nodes.add(parseConcat());
+            while (more() && peek() == '|') {
+                pos++;
+                nodes.add(parseConcat());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new AltNode(nodes);
+        }
+
+        private Node parseConcat() {
+            final List<Node> nodes = new ArrayList<>();
+            while (more() && peek() != '|' && peek() != ')') {
+                nodes.add(parseRepeat());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new ConcatNode(nodes);
+        }
+
+        private Node parseRepeat() {
+            Node node = parseAtom();
+            while (more()) {
+                final char c = peek();
+                final int min;
+                final int max;
+                if (c == '*') {
+                    pos++;
+                    min = 0;
+                    max = -1;
+                } else if (c == '+') {
+                    pos++;
+                    min = 1;
+                    max = -1;
+                } else if (c == '?') {
+                    pos++;
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    pos++;
+                    min = parseNumber();
+                    if (more() && peek() == ',') {
+                        pos++;
+                        max = more() && peek() == '}' ? -1 : parseNumber();
+                    } else {
+                        max = min;
+                    }
+                    expect('}');
+                    if (max >= 0 && max < min) throw error("invalid repetition range");
+                    if (Math.max(min, max) > MAX_REPEAT) throw error("repetition count above " + MAX_REPEAT);
+                } else {
+                    break;
+                }
+                if (more() && (peek() == '?' || peek() == '+')) {
+                    throw error("lazy and possessive quantifiers need backtracking");
+                }
+                node = new RepeatNode(node, min, max);
+            }
+            return node;
+        }
+
+        private Node parseAtom() {
+            final char c = next();
+            switch (c) {
+                case '(':
+                    if (more() && peek() == '?') {
+                        pos++;
+                        final char kind = more() ? next() : 0;
+                        if (kind == '<' && more() && Character.isLetter(peek())) {
+                            // Named group, capture is irrelevant here
+                            while (more() && peek() != '>') pos++;
+                            expect('>');
+                        } else if (kind != ':') {
+                            if (kind == '=' || kind == '!' || kind == '<') throw error("lookaround needs backtracking");
+                            if (kind == '>') throw error("atomic groups need backtracking");
+                            throw error("inline flags are not supported");
+                        }
+                    }
+                    final Node group = more() && peek() == ')'
+                            ? new ConcatNode(new ArrayList<>())
+                            : parseAlternation();
+                    expect(')');
+                    return group;
+                case '[':
+                    return new CharNode(parseClass());
+                case '.':
+                    return new CharNode(DOT);
+                case '\\':
+                    return new CharNode(parseEscape());
+                case '^':
+                case '$':
+                    throw error("anchors are not supported, use a word rule for identifier boundaries");
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("dangling quantifier '" + c + "'");
+                case ')':
+                    throw error("unbalanced ')'");
+                default:
+                    return new CharNode(new int[]{c, c});
+            }
+        }
+
+        private int[] parseClass() {
+            final boolean negate = more() && peek() == '^';
+            if (negate) pos++;
+            int[] ranges = new int[0];
+            boolean first = true;
+            while (true) {
+                if (!more()) throw error("unclosed character class");
+                char c = peek();
+                if (c == ']' && !first) {
+                    pos++;
+                    break;
+                }
+                first = false;
+                if (c == '[' || (c == '&' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) == '&')) {
+                    throw error("nested character classes are not supported");
+                }
+                pos++;
+                final int[] item;
+                if (c == '\\') {
+                    item = parseEscape();
+                } else {
+                    item = new int[]{c, c};
+                }
+                // Range a-z, only between two single characters
+                if (item.length == 2 && item[0] == item[1] && more() && peek() == '-'
+                        && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    c = next();
+                    final int[] upper = c == '\\' ? parseEscape() : new int[]{c, c};
+                    if (upper.length != 2 || upper[0] != upper[1] || upper[0] < item[0]) {
+                        throw error("invalid character range");
+                    }
+                    ranges = union(ranges, new int[]{item[0], upper[0]});
+                } else {
+                    ranges = union(ranges, item);
+                }
+            }
+            return negate ? complement(ranges) : ranges;
+        }
+
+        private int[] parseEscape() {
+            if (!more()) throw error("trailing backslash");
+            final char c = next();
+            switch (c) {
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return complement(DIGIT);
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return complement(WORD);
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return complement(SPACE);
+                case 't':
+                    return single('\t');
+                case 'n':
+                    return single('\n');
+                case 'r':
+                    return single('\r');
+                case 'f':
+                    return single('\f');
+                case 'e':
+                    return single(0x1B);
+                case 'x':
+                    return single(parseHex(2));
+                case 'u':
+                    return single(parseHex(4));
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'z':
+                case 'Z':
+                case 'G':
+                    throw error("anchors are not supported, use a word rule for identifier boundaries");
+                case 'k':
+                    throw error("back references need backtracking");
+                case 'Q':
+                    throw error("\\Q..\\E quoting is not supported, use a literal rule");
+                default:
+                    if (c >= '1' && c <= '9') throw error("back references need backtracking");
+                    if (Character.isLetterOrDigit(c)) throw error("unsupported escape \\" + c);
+                    return single(c);
+            }
+        }
+
+        private int parseHex(final int digits) {
+            if (pos + digits > pattern.length()) throw error("incomplete hex escape");
+            try {
+                final int value = Integer.parseInt(pattern.substring(pos, pos + digits), 16);
+                pos += digits;
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("invalid hex escape");
+            }
+        }
+
+        private int parseNumber() {
+            final int begin = pos;
+            while (more() && Character.isDigit(peek())) pos++;
+            if (begin == pos) throw error("number expected");
+            try {
+                return Integer.parseInt(pattern.substring(begin, pos));
+            } catch (NumberFormatException e) {
+                throw error("repetition count above " + MAX_REPEAT);
+            }
+        }
+
+        private void expect(final char c) {
+            if (!more() || next() != c) throw error("'" + c + "' expected");
+        }
+
+        private boolean more() {
+            return pos < pattern.length();
+        }
+
+        private char peek() {
+            return pattern.charAt(pos);
+        }
+
+        private char next() {
+            return pattern.charAt(pos++);
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException(message + " at index " + pos);
+        }
+    }
+
+    private static int[] single(final int c) {
+        return new int[]{c, c};
+    }
+
+    // Union of two sorted range lists
+    private static int[] union(final int[] a, final int[] b) {
+        final int[] all = new int[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        final Integer[] order = new Integer[all.length / 2];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Integer.compare(all[x * 2], all[y * 2]));
+        final List<int[]> merged = new ArrayList<>();
+        for (final int i : order) {
+            final int lo = all[i * 2];
+            final int hi = all[i * 2 + 1];
+            final int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && lo <= last[1] + 1) {
+                last[1] = Math.max(last[1], hi);
+            } else {
+                merged.add(new int[]{lo, hi});
+            }
+        }
+        final int[] result = new int[merged.size() * 2];
+        for (int i = 0; i < merged.size(); i++) {
+            result[i * 2] = merged.get(i)[0];
+            result[i * 2 + 1] = merged.get(i)[1];
+        }
+        return result;
+    }
+
+    // Complement of a sorted range list over the char space
+    private static int[] complement(final int[] ranges) {
+        final List<Integer> result = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result.add(next);
+                result.add(ranges[i] - 1);
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= 0xFFFF) {
+            result.add(next);
+            result.add(0xFFFF);
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+/**
+ * Cheap test proving a file cannot contain any match, run on the raw UTF-8 bytes
+ * <p>
+ * Built from the automaton: the bytes that can start a match, and for each of them either the
+ * ASCII bytes that can follow it, or a flag when one byte is already enough to be a candidate
+ * (one character matches, or the second character may be outside ASCII). Bytes outside ASCII
+ * are all candidates as soon as any rule can start with such a character.
+ * <p>
+ * ASCII bytes always decode to the same character in UTF-8, so a file without a candidate
+ * cannot match and the decode and replace can be skipped. A candidate only means a match is
+ * possible, the automaton decides.
+ */
+final class RulePrefilter {
+
+    private static final int BYTES = 256;
+    private static final int ASCII = RuleAutomaton.ASCII;
+
+    private final boolean[] first = new boolean[BYTES];
+    private final boolean[] single = new boolean[BYTES];
+    private final long[] pairs = new long[ASCII * ASCII / 64];
+
+    RulePrefilter(final RuleAutomaton automaton) {
+        if (automaton.hasNonAsciiTransition(RuleAutomaton.START)) {
+            for (int b = ASCII; b < BYTES; b++) {
+                first[b] = true;
+                single[b] = true;
+            }
+        }
+        for (char c = 0; c < ASCII; c++) {
+            final int state = automaton.next(RuleAutomaton.START, c);
+            if (state == RuleAutomaton.DEAD) continue;
+            first[c] = true;
+            if (automaton.isAccepting(state) || automaton.hasNonAsciiTransition(state)) {
+                single[c] = true;
+                continue;
+            }
+            for (char d = 0; d < ASCII; d++) {
+                if (automaton.next(state, d) != RuleAutomaton.DEAD) {
+                    final int pair = c * ASCII + d;
+                    pairs[pair >>> 6] |= 1L << pair;
+                }
+            }
+        }
+    }
+
+    boolean mayMatch(final byte[] content) {
+        final int last = content.length - 1;
+        for (int i = 0; i <= last; i++) {
+            final int b = content[i] & 0xFF;
+            if (!first[b]) continue;
+            if (single[b]) return true;
+            if (i < last) {
+                final int next = content[i + 1];
+                // Negative for bytes outside ASCII, which cannot follow here
+                if (next >= 0) {
+                    final int pair = b * ASCII + next;
+                    if ((pairs[pair >>> 6] & (1L << pair)) != 0) return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Records which rules the outputs in the target folder were made with
+ * <p>
+ * When the rules changed, the record is removed before the first output is written and only
+ * written back once every output matches the new rules. A run stopped in between leaves no
+ * record, so the next run redoes every processed file whatever its rules are, even when they
+ * went back to the recorded ones while some outputs already hold the newer replacements.
+ */
+final class RulesFingerprint {
+
+    private final File file;
+    private final String fingerprint;
+    private final AtomicFileWriter writer;
+    private boolean changed;
+
+    RulesFingerprint(final File file, final String fingerprint, final AtomicFileWriter writer) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.writer = writer;
+    }
+
+    /**
+     * Compare with the recorded rules, and invalidate the record when they differ
+     *
+     * @return Whether the outputs were made with other rules
+     */
+    boolean begin() throws IOException {
+        changed = !fingerprint.equals(read());
+        if (changed) {
+            writer.delete(file);
+            writer.sync();
+        }
+        return changed;
+    }
+
+    /**
+     * Record the current rules, once every output was made with them
+     */
+    void commit() throws IOException {
+        if (changed) {
+            writer.write(file, fingerprint.getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+            writer.sync();
+            changed = false;
+        }
+    }
+
+    private String read() {
+        try {
+            return file.exists() ? FileUtils.readFileToString(file, StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of ReplaceTokenPreprocessor, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2019 Hexosse <https://github.com/hexomod-tools/gradle.replace.token.preprocessor.plugin>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.jamorham.android.replace.token;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the plugin through Gradle TestKit on a generated Android sized project and checks how
+ * many files each kind of build reads and writes. Wall times are appended to a CSV report per
+ * plugin version so runs of different versions can be compared.
+ * <p>
+ * Scenarios depend on each other and run in name order.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PreprocessorPerformanceTest {
+
+    private static final Pattern STATISTICS = Pattern.compile("Replace Plugin: statistics files=(\\d+) read=(\\d+) written=(\\d+)");
+
+    // Mix of generated files, out of 10
+    private static final int JAVA_SHARE = 6;
+    private static final int XML_SHARE = 3;
+
+    private static File projectDir;
+    private static int javaFiles;
+    private static int xmlFiles;
+    private static int pngFiles;
+
+    @BeforeClass
+    public static void generateProject() throws IOException {
+        final int files = Integer.getInteger("performance.files", 10000);
+        projectDir = Files.createTempDirectory("replace-performance").toFile();
+
+        writeBuildScript("value");
+        FileUtils.writeStringToFile(new File(projectDir, "settings.gradle"), "rootProject.name = 'performance'\n", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(projectDir, "src/main/AndroidManifest.xml"),
+                "<manifest package=\"com.example.@TOKEN@\"/>\n", StandardCharsets.UTF_8);
+
+        final byte[] png = new byte[2048];
+        for (int i = 0; i < png.length; i++) {
+            png[i] = (byte) (i * 31);
+        }
+
+        for (int i = 0; i < files; i++) {
+            final int kind = i % 10;
+            final String folder = "p" + (i / 500);
+            if (kind < JAVA_SHARE) {
+                // One java file in four contains a token
+                final String body = "package com.example." + folder + ";\n\n"
+                        + "public class C" + i + " {\n"
+                        + "    static final String NAME = \"" + (i % 4 == 0 ? "@TOKEN@" : "plain") + "\";\n"
+                        + "}\n";
+                FileUtils.writeStringToFile(new File(projectDir, "src/main/java/com/example/" + folder + "/C" + i + ".java"), body, StandardCharsets.UTF_8);
+                javaFiles++;
+            } else if (kind < JAVA_SHARE + XML_SHARE) {
+                FileUtils.writeStringToFile(new File(projectDir, "src/main/res/layout-" + folder + "/layout_" + i + ".xml"),
+                        "<LinearLayout android:tag=\"@TOKEN@\"/>\n", StandardCharsets.UTF_8);
+                xmlFiles++;
+            } else {
+                FileUtils.writeByteArrayToFile(new File(projectDir, "src/main/res/drawable-" + folder + "/image_" + i + ".png"), png);
+                pngFiles++;
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteProject() {
+        FileUtils.deleteQuietly(projectDir);
+    }
+
+    @Test
+    public void scenario1ColdBuild() throws IOException {
+        final int all = allFiles();
+        assertBuild("cold", all, all);
+        final File output = new File(projectDir, "build/preprocessor/replace/main/java/com/example/p0/C0.java");
+        assertTrue(FileUtils.readFileToString(output, StandardCharsets.UTF_8).contains("\"value\""));
+    }
+
+    @Test
+    public void scenario2NoOpRebuild() throws IOException {
+        assertBuild("no-op", 0, 0);
+    }
+
+    @Test
+    public void scenario3SingleFileEdit() throws IOException {
+        final File source = new File(projectDir, "src/main/java/com/example/p0/C1.java");
+        FileUtils.writeStringToFile(source, "\n// edited\n", StandardCharsets.UTF_8, true);
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+        assertBuild("single-file-edit", 1, 1);
+    }
+
+    @Test
+    public void scenario4RuleChange() throws IOException {
+        writeBuildScript("changed");
+        final int processed = javaFiles + xmlFiles + 1;
+        assertBuild("rule-change", processed, processed);
+        final File output = new File(projectDir, "build/preprocessor/replace/main/java/com/example/p0/C0.java");
+        assertTrue(FileUtils.readFileToString(output, StandardCharsets.UTF_8).contains("\"changed\""));
+    }
+
+    @Test
+    public void scenario5PostCleanRebuild() throws IOException {
+        runner("clean").build();
+        final int all = allFiles();
+        assertBuild("post-clean", all, all);
+    }
+
+    private static int allFiles() {
+        // Manifest included
+        return javaFiles + xmlFiles + pngFiles + 1;
+    }
+
+    private static void writeBuildScript(final String value) throws IOException {
+        final String script = "plugins {\n"
+                + "    id 'com.android.application'\n"
+                + "    id 'com.github.jamorham.android.replace.token.preprocessor'\n"
+                + "}\n\n"
+                + "replaceAndroidTokenPreprocessorSettings {\n"
+                + "    replace '@TOKEN@': '" + value + "'\n"
+                + "}\n";
+        FileUtils.writeStringToFile(new File(projectDir, "build.gradle"), script, StandardCharsets.UTF_8);
+    }
+
+    private static GradleRunner runner(final String... arguments) {
+        return GradleRunner.create()
+                .withProjectDir(projectDir)
+                .withPluginClasspath()
+                .withArguments(arguments);
+    }
+
+    private void assertBuild(final String scenario, final int expectedRead, final int expectedWritten) throws IOException {
+        final long start = System.nanoTime();
+        final BuildResult result = runner("preBuild", "--info", "--stacktrace").build();
+        final long wallMillis = (System.nanoTime() - start) / 1000000;
+
+        final Matcher matcher = STATISTICS.matcher(result.getOutput());
+        assertTrue("No statistics in build output for " + scenario, matcher.find());
+        final int files = Integer.parseInt(matcher.group(1));
+        final int read = Integer.parseInt(matcher.group(2));
+        final int written = Integer.parseInt(matcher.group(3));
+        record(scenario, files, read, written, wallMillis);
+
+        assertEquals("files seen by " + scenario, allFiles(), files);
+        assertEquals("files read by " + scenario, expectedRead, read);
+        assertEquals("files written by " + scenario, expectedWritten, written);
+    }
+
+    private static void record(final String scenario, final int files, final int read, final int written, final long wallMillis) throws IOException {
+        final String version = System.getProperty("performance.pluginVersion", "unknown");
+        final File report = new File(System.getProperty("performance.reportDir", "build/reports/performance"), "performance-" + version + ".csv");
+        if (!report.exists()) {
+            FileUtils.writeStringToFile(report, "version,scenario,files,read,written,wall_ms\n", StandardCharsets.UTF_8);
+        }
+        final String line = version + "," + scenario + "," + files + "," + read + "," + written + "," + wallMillis + "\n";
+        FileUtils.writeStringToFile(report, line, StandardCharsets.UTF_8, true);
+        System.out.print("Performance " + line);
+    }
+}
@@ -23,14 +23,31 @@
  */
 package com.github.jamorham.android.replace.token;
 
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.logging.LogLevel;
+import org.gradle.api.logging.Logger;
 import org.junit.Test;
 
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class PreprocessorTest {
 
@@ -59,4 +76,329 @@ public class PreprocessorTest {
         assertEquals(preprocessor.processLine("VAR_DOUBLE: @VAR_DOUBLE@"), "VAR_DOUBLE: 1.32");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void processWord() {
+        final List<ReplaceRule> rules = Arrays.asList(
+                ReplaceRule.word("com.eveningoutpost.dexdrip.Services", "com.eveningoutpost.dexdrip.services"),
+                ReplaceRule.word("Services", "services"));
+        Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        assertEquals("import com.eveningoutpost.dexdrip.services.Foo;", preprocessor.processLine("import com.eveningoutpost.dexdrip.Services.Foo;"));
+        assertEquals("new services(); new MyServices(); new Services2();", preprocessor.processLine("new Services(); new MyServices(); new Services2();"));
+        assertEquals("services", preprocessor.processLine("Services"));
+    }
+
+    @Test
+    public void processRegex() {
+        final List<ReplaceRule> rules = Arrays.asList(
+                ReplaceRule.regex("@VAR_[A-Z]+@", "var"),
+                ReplaceRule.regex("v[0-9]+(\\.[0-9]+)*", "version"),
+                ReplaceRule.literal("@VAR_INT@", 1));
+        Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        assertEquals("var var var", preprocessor.processLine("@VAR_STRING@ @VAR_BOOL@ @VAR_INT@"));
+        assertEquals("version-version.", preprocessor.processLine("v1.2.3-v10."));
+        assertEquals("@VAR_1@", preprocessor.processLine("@VAR_1@"));
+    }
+
+    @Test
+    public void processLongestMatch() {
+        final List<ReplaceRule> rules = Arrays.asList(
+                ReplaceRule.literal("ab", "1"),
+                ReplaceRule.literal("abc", "2"),
+                ReplaceRule.literal("b", "3"));
+        Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        assertEquals("2 1 3", preprocessor.processLine("abc ab b"));
+    }
+
+    @Test(timeout = 10000)
+    public void processLinear() {
+        // Each start position used to run to the end of the text, quadratic for this rule
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append('a');
+        }
+        final String line = text.toString();
+        final Preprocessor preprocessor = new Preprocessor(extensions, Arrays.asList(ReplaceRule.regex("a+b", "x")));
+        assertEquals(line, preprocessor.processLine(line));
+        assertEquals("x", preprocessor.processLine(line + "b"));
+    }
+
+    @Test
+    public void processMatchesReference() {
+        final List<ReplaceRule> rules = Arrays.asList(
+                ReplaceRule.literal("ab", "1"),
+                ReplaceRule.word("ab", "2"),
+                ReplaceRule.word("b_a", "3"),
+                ReplaceRule.regex("[ab]+c", "4"),
+                ReplaceRule.regex("a(b|_)*a", "5"));
+        final Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        final Random random = new Random(7);
+        final String alphabet = "ab_c .";
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder text = new StringBuilder();
+            for (int c = random.nextInt(16); c > 0; c--) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            final String line = text.toString();
+            assertEquals(line, replaceReference(rules, line), preprocessor.processLine(line));
+        }
+    }
+
+    // Leftmost longest, first declared rule on ties, straight from the definition
+    private static String replaceReference(final List<ReplaceRule> rules, final String text) {
+        final StringBuilder result = new StringBuilder();
+        int i = 0;
+        search:
+        while (i < text.length()) {
+            for (int end = text.length(); end > i; end--) {
+                final String candidate = text.substring(i, end);
+                for (final ReplaceRule rule : rules) {
+                    final boolean matches;
+                    switch (rule.getType()) {
+                        case REGEX:
+                            matches = Pattern.matches(rule.getPattern(), candidate);
+                            break;
+                        case WORD:
+                            matches = candidate.equals(rule.getPattern())
+                                    && (i == 0 || !RuleAutomaton.isIdentifierChar(text.charAt(i - 1)))
+                                    && (end == text.length() || !RuleAutomaton.isIdentifierChar(text.charAt(end)));
+                            break;
+                        default:
+                            matches = candidate.equals(rule.getPattern());
+                    }
+                    if (matches) {
+                        result.append(rule.getReplacement());
+                        i = end;
+                        continue search;
+                    }
+                }
+            }
+            result.append(text.charAt(i++));
+        }
+        return result.toString();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectBackReference() {
+        new Preprocessor(extensions, Arrays.asList(ReplaceRule.regex("(a)\\1", "x")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectLookahead() {
+        new Preprocessor(extensions, Arrays.asList(ReplaceRule.regex("a(?=b)", "x")));
+    }
+
+    @Test(expected = IllegalArgumentException.class, timeout = 10000)
+    public void rejectNestedRepeat() {
+        new Preprocessor(extensions, Arrays.asList(ReplaceRule.regex("((a{256}){256}){256}", "x")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmptyMatch() {
+        new Preprocessor(extensions, Arrays.asList(ReplaceRule.regex("a*", "x")));
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        final Path dir = Files.createTempDirectory("preprocessor");
+        try {
+            pipeline(dir);
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    private void pipeline(final Path dir) throws Exception {
+        final File in = new File(dir.toFile(), "in");
+        final File out = new File(dir.toFile(), "out");
+        in.mkdirs();
+        for (int i = 0; i < 50; i++) {
+            Files.write(new File(in, i + ".java").toPath(), ("VAR_STRING: @VAR_STRING@ " + i).getBytes(StandardCharsets.UTF_8));
+            Files.write(new File(in, i + ".png").toPath(), ("@VAR_STRING@ " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        final Preprocessor preprocessor = new Preprocessor(extensions, replace);
+        final PreprocessorPipeline pipeline = new PreprocessorPipeline(preprocessor, 2, 2, 2, 4);
+        pipeline.start();
+        for (final File file : in.listFiles()) {
+            pipeline.submit(file, new File(out, file.getName()));
+        }
+        pipeline.finish(true);
+
+        for (int i = 0; i < 50; i++) {
+            final File processed = new File(out, i + ".java");
+            assertEquals("VAR_STRING: value_string " + i, new String(Files.readAllBytes(processed.toPath()), StandardCharsets.UTF_8));
+            assertEquals(new File(in, i + ".java").lastModified(), processed.lastModified());
+            assertEquals("@VAR_STRING@ " + i, new String(Files.readAllBytes(new File(out, i + ".png").toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void pipelineInterrupted() throws Exception {
+        final Path dir = Files.createTempDirectory("preprocessor");
+        try {
+            final File in = new File(dir.toFile(), "in.java");
+            Files.write(in.toPath(), "@VAR_STRING@".getBytes(StandardCharsets.UTF_8));
+            final PreprocessorPipeline pipeline = new PreprocessorPipeline(new Preprocessor(extensions, replace), 2, 2, 2, 1);
+            pipeline.start();
+            pipeline.submit(in, new File(dir.toFile(), "out.java"));
+
+            // Interrupted walk, for example a cancelled build
+            Thread.currentThread().interrupt();
+            pipeline.finish(false);
+            assertTrue(Thread.interrupted());
+
+            for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName(), thread.getName().startsWith("replace-preprocessor-"));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    @Test
+    public void rulesRevertedAfterAbort() throws Exception {
+        final Path dir = Files.createTempDirectory("preprocessor");
+        try {
+            final File in = new File(dir.toFile(), "in.java");
+            final File out = new File(dir.toFile(), "target/out.java");
+            Files.write(in.toPath(), "@VAR_STRING@".getBytes(StandardCharsets.UTF_8));
+            final Map<String, Object> first = Collections.singletonMap("@VAR_STRING@", "first");
+            final Map<String, Object> second = Collections.singletonMap("@VAR_STRING@", "second");
+
+            run(first, in, out, true);
+            assertEquals("first", new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+            // Output written with the new rules, but the run stops before recording them
+            run(second, in, out, false);
+            assertEquals("second", new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+            // Back to the recorded rules, the output must not be taken as up to date
+            run(first, in, out, true);
+            assertEquals("first", new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    private void run(final Map<String, Object> rules, final File in, final File out, final boolean complete) throws Exception {
+        final Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        final AtomicFileWriter writer = new AtomicFileWriter(true);
+        final RulesFingerprint fingerprint = new RulesFingerprint(new File(out.getParentFile(), ".replace-rules"), preprocessor.getFingerprint(), writer);
+        final PreprocessorPipeline pipeline = new PreprocessorPipeline(preprocessor, 1, 1, 1, 1, fingerprint.begin(), writer, null);
+        pipeline.start();
+        pipeline.submit(in, out);
+        pipeline.finish(true);
+        if (complete) {
+            fingerprint.commit();
+        }
+    }
+
+    @Test
+    public void atomicWrite() throws Exception {
+        final Path dir = Files.createTempDirectory("preprocessor");
+        try {
+            final File out = new File(dir.toFile(), "sub/out.java");
+            final AtomicFileWriter writer = new AtomicFileWriter(true);
+            writer.write(out, "first".getBytes(StandardCharsets.UTF_8), 1000000L);
+            writer.write(out, "second".getBytes(StandardCharsets.UTF_8), 2000000L);
+            writer.sync();
+            assertEquals("second", new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+            assertEquals(2000000L, out.lastModified());
+            // Nothing but the output is left behind
+            assertEquals(1, out.getParentFile().list().length);
+
+            final File copy = new File(dir.toFile(), "sub/copy.java");
+            writer.copy(out, copy, 3000000L);
+            assertEquals("second", new String(Files.readAllBytes(copy.toPath()), StandardCharsets.UTF_8));
+            assertEquals(3000000L, copy.lastModified());
+            assertEquals(2, out.getParentFile().list().length);
+
+            // Outputs get the same permissions as any other new file, not those of a private temp file
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                final File plain = new File(dir.toFile(), "sub/plain.java");
+                Files.write(plain.toPath(), new byte[0]);
+                assertEquals(Files.getPosixFilePermissions(plain.toPath()), Files.getPosixFilePermissions(out.toPath()));
+                assertEquals(Files.getPosixFilePermissions(plain.toPath()), Files.getPosixFilePermissions(copy.toPath()));
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+    }
+
+    @Test
+    public void asyncLog() throws Exception {
+        // Info enabled, debug not
+        final List<String> lines = asyncLog(false);
+        assertEquals("LIFECYCLE start", lines.get(0));
+        assertEquals(1 + AsyncLog.SAMPLE_LIMIT + 1, lines.size());
+        assertEquals("LIFECYCLE Replace Plugin: " + (400 - AsyncLog.SAMPLE_LIMIT) + " more 'PROCESS' messages not shown", lines.get(lines.size() - 1));
+
+        // Debug enabled, every message shown and no summary
+        final List<String> debug = asyncLog(true);
+        assertEquals("LIFECYCLE start", debug.get(0));
+        assertEquals(1 + 400, debug.size());
+        assertFalse(debug.get(debug.size() - 1).contains("not shown"));
+    }
+
+    private List<String> asyncLog(final boolean debug) throws Exception {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final Logger logger = (Logger) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Logger.class}, (proxy, method, args) -> {
+            if (method.getName().equals("isEnabled")) {
+                return debug || args[0] != LogLevel.DEBUG;
+            }
+            if (method.getName().equals("log")) {
+                lines.add(args[0] + " " + args[1]);
+            }
+            return null;
+        });
+
+        final Thread[] workers = new Thread[4];
+        try (AsyncLog log = new AsyncLog(logger, true)) {
+            log.log(LogLevel.INFO, "start");
+            for (int w = 0; w < workers.length; w++) {
+                workers[w] = new Thread(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        log.sample(LogLevel.INFO, "PROCESS ", i);
+                    }
+                });
+                workers[w].start();
+            }
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void prefilter() {
+        final List<ReplaceRule> rules = Arrays.asList(
+                ReplaceRule.literal("@VAR@", "value"),
+                ReplaceRule.word("Services", "services"),
+                ReplaceRule.regex("x[0-9]", "digit"),
+                ReplaceRule.literal("\u00e9t\u00e9", "summer"));
+        final Preprocessor preprocessor = new Preprocessor(extensions, rules);
+        assertFalse(preprocessor.mayMatch(bytes("public class Plain { int x; String s = \"@\"; }")));
+        assertTrue(preprocessor.mayMatch(bytes("@VAR@")));
+        assertTrue(preprocessor.mayMatch(bytes("new Services()")));
+        assertTrue(preprocessor.mayMatch(bytes("int x1;")));
+        assertTrue(preprocessor.mayMatch(bytes("\u00e9t\u00e9")));
+
+        // Never rejects content the rules would change
+        final Random random = new Random(42);
+        final String alphabet = "@VARServiceslx0123 \u00e9t";
+        for (int i = 0; i < 10000; i++) {
+            final StringBuilder text = new StringBuilder();
+            for (int c = random.nextInt(12); c > 0; c--) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            final String line = text.toString();
+            if (!preprocessor.processLine(line).equals(line)) {
+                assertTrue(line, preprocessor.mayMatch(bytes(line)));
+            }
+        }
+    }
+
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+}